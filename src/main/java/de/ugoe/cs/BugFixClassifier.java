@@ -24,6 +24,8 @@ import de.ugoe.cs.bugfixtypes.DataChangeTypes;
 import de.ugoe.cs.bugfixtypes.InterfaceChangeTypes;
 import de.ugoe.cs.bugfixtypes.LogicControlChangeTypes;
 import de.ugoe.cs.bugfixtypes.OtherChangeTypes;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.rmi.UnexpectedException;
 import java.util.HashMap;
@@ -38,6 +40,41 @@ import org.apache.logging.log4j.Logger;
 public class BugFixClassifier {
     private static final Logger LOGGER = LogManager.getLogger(BugFixClassifier.class.getName());
 
+    /**
+     * Classifies the changes between the member declarations that were kept by the given scope.
+     *
+     * @param scope scoped old and new file
+     * @return number of changes per label
+     */
+    public static Map<String, Integer> getBugClassifications(HunkScope scope) throws IOException {
+        return getBugClassifications(scope.getOldContent(), scope.getNewContent());
+    }
+
+    /**
+     * Classifies the changes between the contents of two files.
+     *
+     * @param content1 content of the old file
+     * @param content2 content of the new file
+     * @return number of changes per label
+     */
+    public static Map<String, Integer> getBugClassifications(byte[] content1, byte[] content2) throws IOException {
+        // ChangeDistiller can only read files
+        Path file1 = null;
+        Path file2 = null;
+        try {
+            file1 = Files.createTempFile("bc1-", "-suff");
+            file2 = Files.createTempFile("bc2-", "-suff");
+            Files.write(file1, content1);
+            Files.write(file2, content2);
+            return getBugClassifications(file1, file2);
+        } finally {
+            if (file1 != null)
+                Files.deleteIfExists(file1);
+            if (file2 != null)
+                Files.deleteIfExists(file2);
+        }
+    }
+
     public static Map<String, Integer> getBugClassifications(Path file1, Path file2) throws UnexpectedException {
         FileDistiller distiller = ChangeDistiller.createFileDistiller(ChangeDistiller.Language.JAVA);
         // Go through the diff between these commits and calculate for each changed file and each change the change
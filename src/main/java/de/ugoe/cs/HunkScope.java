@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+
+/**
+ * Reduces two versions of a java file to the member declarations (methods, fields, initializers, nested types) of
+ * their top level types that are touched by the hunks of a diff. Everything outside of these members (package,
+ * imports, type headers) is kept, so that ChangeDistiller still sees two complete compilation units.
+ *
+ * A member that is touched on one side is also kept on the other side if a member with the same declaration header
+ * exists there. Hence, the label counts only differ from the full-file distillation if ChangeDistiller would match a
+ * changed node to a node within an untouched member (e.g., a statement moved from an unchanged method), which is
+ * then reported as insert/delete.
+ */
+public class HunkScope {
+    // ISO-8859-1 maps each byte to one char, so that the kept parts of a file are written back unchanged
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+    private static final Pattern ENUM_HEADER = Pattern.compile("\\benum\\s");
+
+    private final String oldSource;
+    private final String newSource;
+    private final int prunedMembers;
+
+    private HunkScope(String oldSource, String newSource, int prunedMembers) {
+        this.oldSource = oldSource;
+        this.newSource = newSource;
+        this.prunedMembers = prunedMembers;
+    }
+
+    public String getOldSource() {
+        return oldSource;
+    }
+
+    public String getNewSource() {
+        return newSource;
+    }
+
+    public byte[] getOldContent() {
+        return oldSource.getBytes(CHARSET);
+    }
+
+    public byte[] getNewContent() {
+        return newSource.getBytes(CHARSET);
+    }
+
+    /**
+     * @return number of members that were removed from both files together
+     */
+    public int getPrunedMembers() {
+        return prunedMembers;
+    }
+
+    /**
+     * Creates the scoped sources for the given edits from the raw contents of both files.
+     *
+     * @param oldContent content of the old file
+     * @param newContent content of the new file
+     * @param edits edits between the old (A) and new (B) file, as created by JGit
+     * @return scoped sources or null, if one of the files could not be split into members
+     */
+    public static HunkScope of(byte[] oldContent, byte[] newContent, EditList edits) {
+        return of(new String(oldContent, CHARSET), new String(newContent, CHARSET), edits);
+    }
+
+    /**
+     * Creates the scoped sources for the given edits.
+     *
+     * @param oldSource content of the old file
+     * @param newSource content of the new file
+     * @param edits edits between the old (A) and new (B) file, as created by JGit
+     * @return scoped sources or null, if one of the files could not be split into members
+     */
+    public static HunkScope of(String oldSource, String newSource, EditList edits) {
+        List<Member> oldMembers = findMembers(oldSource);
+        List<Member> newMembers = findMembers(newSource);
+        if(oldMembers == null || newMembers == null) {
+            return null;
+        }
+
+        Set<String> keptKeys = new HashSet<>();
+        for(Edit edit : edits) {
+            for(Member member : oldMembers) {
+                if(member.isTouchedBy(edit.getBeginA(), edit.getEndA())) {
+                    member.kept = true;
+                    keptKeys.add(member.key);
+                }
+            }
+            for(Member member : newMembers) {
+                if(member.isTouchedBy(edit.getBeginB(), edit.getEndB())) {
+                    member.kept = true;
+                    keptKeys.add(member.key);
+                }
+            }
+        }
+
+        int prunedMembers = 0;
+        for(Member member : oldMembers) {
+            prunedMembers += member.isPruned(keptKeys) ? 1 : 0;
+        }
+        for(Member member : newMembers) {
+            prunedMembers += member.isPruned(keptKeys) ? 1 : 0;
+        }
+
+        return new HunkScope(prune(oldSource, oldMembers, keptKeys), prune(newSource, newMembers, keptKeys),
+                prunedMembers);
+    }
+
+    private static String prune(String source, List<Member> members, Set<String> keptKeys) {
+        StringBuilder pruned = new StringBuilder(source.length());
+        int position = 0;
+        for(Member member : members) {
+            if(!member.isPruned(keptKeys)) {
+                continue;
+            }
+            pruned.append(source, position, member.startOffset);
+            position = member.endOffset;
+        }
+        pruned.append(source, position, source.length());
+        return pruned.toString();
+    }
+
+    /**
+     * Splits the bodies of all top level types into members. Returns null, if the braces of the file are unbalanced
+     * or a literal or comment is not terminated. The constants of an enum are its first member and always kept, as
+     * an enum body can not start with other members.
+     */
+    private static List<Member> findMembers(String source) {
+        List<Member> members = new ArrayList<>();
+        int length = source.length();
+        int depth = 0;
+        int parenDepth = 0;
+        int line = 0;
+        // Start of the declaration of the next top level type and the body start offsets of top level enums
+        int typeStart = 0;
+        Set<Integer> enumBodies = new HashSet<>();
+
+        // State of the member that is currently scanned (only valid for depth >= 1)
+        int memberStart = -1;
+        int memberFirstLine = -1;
+        StringBuilder key = new StringBuilder();
+        boolean keyClosed = false;
+        boolean pendingEnd = false;
+        int pendingEndOffset = -1;
+        int pendingEndLine = -1;
+        int pendingCommentLine = -1;
+
+        int i = 0;
+        while(i < length) {
+            char c = source.charAt(i);
+
+            // Skip whitespace and comments, they never start or end a member
+            if(c == '\n') {
+                line++;
+                i++;
+                appendSpace(key, keyClosed);
+                continue;
+            }
+            if(Character.isWhitespace(c)) {
+                i++;
+                appendSpace(key, keyClosed);
+                continue;
+            }
+            if(c == '/' && i + 1 < length && (source.charAt(i + 1) == '/' || source.charAt(i + 1) == '*')) {
+                if(depth == 1 && pendingEnd && pendingCommentLine == -1) {
+                    pendingCommentLine = line;
+                } else if(depth == 1 && memberFirstLine == -1) {
+                    memberFirstLine = line;
+                }
+                int end;
+                if(source.charAt(i + 1) == '/') {
+                    end = source.indexOf('\n', i);
+                    end = end == -1 ? length : end;
+                } else {
+                    end = source.indexOf("*/", i + 2);
+                    if(end == -1) {
+                        return null;
+                    }
+                    end += 2;
+                }
+                line += countLines(source, i, end);
+                i = end;
+                appendSpace(key, keyClosed);
+                continue;
+            }
+
+            // A closing brace only ends a member, if it is not followed by something that continues the declaration,
+            // e.g., array initializers or anonymous classes in field declarations
+            if(pendingEnd) {
+                pendingEnd = false;
+                int commentLine = pendingCommentLine;
+                pendingCommentLine = -1;
+                if(c != ';' && c != ',' && c != ')' && c != '.') {
+                    members.add(new Member(memberStart, pendingEndOffset, memberFirstLine, pendingEndLine,
+                            key.toString().trim()));
+                    memberStart = pendingEndOffset;
+                    memberFirstLine = commentLine;
+                    key.setLength(0);
+                    keyClosed = false;
+                    parenDepth = 0;
+                }
+            }
+
+            if(depth == 1 && memberFirstLine == -1 && c != '}') {
+                memberFirstLine = line;
+            }
+
+            if(c == '"' || c == '\'') {
+                int end = skipLiteral(source, i, c);
+                if(end == -1) {
+                    return null;
+                }
+                if(depth == 1 && !keyClosed) {
+                    key.append(source, i, end);
+                }
+                i = end;
+                continue;
+            }
+
+            if(c == '{') {
+                if(depth == 1 && parenDepth == 0) {
+                    keyClosed = true;
+                }
+                depth++;
+                if(depth == 1) {
+                    // Body of a top level type starts
+                    if(ENUM_HEADER.matcher(source.substring(typeStart, i)).find()) {
+                        enumBodies.add(i + 1);
+                    }
+                    memberStart = i + 1;
+                    memberFirstLine = -1;
+                    key.setLength(0);
+                    keyClosed = false;
+                    parenDepth = 0;
+                }
+            } else if(c == '}') {
+                depth--;
+                if(depth < 0) {
+                    return null;
+                }
+                if(depth == 1) {
+                    pendingEnd = true;
+                    pendingEndOffset = i + 1;
+                    pendingEndLine = line;
+                } else if(depth == 0) {
+                    typeStart = i + 1;
+                }
+            } else if(depth == 0 && c == ';') {
+                typeStart = i + 1;
+            } else if(depth == 1) {
+                if(c == '(') {
+                    parenDepth++;
+                } else if(c == ')') {
+                    parenDepth--;
+                } else if(c == '=' && parenDepth == 0) {
+                    keyClosed = true;
+                } else if(c == ';') {
+                    members.add(new Member(memberStart, i + 1, memberFirstLine, line, key.toString().trim()));
+                    memberStart = i + 1;
+                    memberFirstLine = -1;
+                    key.setLength(0);
+                    keyClosed = false;
+                    parenDepth = 0;
+                    i++;
+                    continue;
+                }
+            }
+
+            if(depth == 1 && !keyClosed && c != '{' && c != '}' && c != ';') {
+                key.append(c);
+            }
+            i++;
+        }
+
+        if(pendingEnd) {
+            members.add(new Member(memberStart, pendingEndOffset, memberFirstLine, pendingEndLine,
+                    key.toString().trim()));
+        }
+
+        for(Member member : members) {
+            if(enumBodies.contains(member.startOffset)) {
+                member.kept = true;
+            }
+        }
+        return depth == 0 ? members : null;
+    }
+
+    private static void appendSpace(StringBuilder key, boolean keyClosed) {
+        if(!keyClosed && key.length() > 0 && key.charAt(key.length() - 1) != ' ') {
+            key.append(' ');
+        }
+    }
+
+    private static int skipLiteral(String source, int start, char quote) {
+        int i = start + 1;
+        while(i < source.length()) {
+            char c = source.charAt(i);
+            if(c == '\\') {
+                i += 2;
+            } else if(c == quote) {
+                return i + 1;
+            } else if(c == '\n') {
+                return -1;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static int countLines(String source, int start, int end) {
+        int lines = 0;
+        for(int i = start; i < end; i++) {
+            if(source.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static class Member {
+        private final int startOffset;
+        private final int endOffset;
+        private final int firstLine;
+        private final int lastLine;
+        private final String key;
+        private boolean kept;
+
+        private Member(int startOffset, int endOffset, int firstLine, int lastLine, String key) {
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.firstLine = firstLine == -1 ? lastLine : firstLine;
+            this.lastLine = lastLine;
+            this.key = key;
+        }
+
+        private boolean isPruned(Set<String> keptKeys) {
+            return !kept && !keptKeys.contains(key);
+        }
+
+        /**
+         * Checks if the (0-based, end exclusive) line range of an edit touches this member. Pure insertions are
+         * attributed to the members before and after the insertion point.
+         */
+        private boolean isTouchedBy(int begin, int end) {
+            if(begin == end) {
+                return firstLine <= begin && lastLine >= begin - 1;
+            }
+            return firstLine < end && lastLine >= begin;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package de.ugoe.cs;
 import com.github.danielfelgar.morphia.Log4JLoggerImplFactory;
 import com.lexicalscope.jewel.cli.CliFactory;
 import de.ugoe.cs.smartshark.CLIArguments;
+import de.ugoe.cs.smartshark.CommitQueries;
 import de.ugoe.cs.smartshark.SmartSHARKPlugin;
 import java.io.IOException;
 import org.mongodb.morphia.logging.MorphiaLoggerFactory;
@@ -29,10 +30,17 @@ import org.mongodb.morphia.logging.MorphiaLoggerFactory;
 public class Main {
 
     public static void main(String[] args) {
+        MorphiaLoggerFactory.registerLogger(Log4JLoggerImplFactory.class);
+        CLIArguments cliArguments = CliFactory.parseArguments(CLIArguments.class, args);
         try {
-            MorphiaLoggerFactory.registerLogger(Log4JLoggerImplFactory.class);
-            CLIArguments cliArguments = CliFactory.parseArguments(CLIArguments.class, args);
-            SmartSHARKPlugin smartSHARKPlugin = new SmartSHARKPlugin(cliArguments);
+            CommitQueries.validateArguments(cliArguments);
+        } catch (IllegalArgumentException e) {
+            // Invalid values of arguments, e.g., dates that can not be parsed
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        try(SmartSHARKPlugin smartSHARKPlugin = new SmartSHARKPlugin(cliArguments)) {
             switch(cliArguments.getStrategy().toLowerCase()) {
                 case "travis":
                     smartSHARKPlugin.storeDataViaTravis();
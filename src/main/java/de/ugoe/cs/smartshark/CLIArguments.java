@@ -59,6 +59,24 @@ public interface CLIArguments {
     @Option(longName = "sha2", defaultToNull = true)
     String getSha2();
 
+    @Option(longName = "hunkScoped")
+    boolean getHunkScoped();
+
+    @Option(longName = "hunkValidation")
+    boolean getHunkValidation();
+
+    @Option(longName = "memoryBudget", defaultValue = "0")
+    int getMemoryBudget();
+
+    @Option(longName = "since", defaultToNull = true)
+    String getSince();
+
+    @Option(longName = "until", defaultToNull = true)
+    String getUntil();
+
+    @Option(longName = "rev-range", defaultToNull = true)
+    String getRevRange();
+
     @Option(helpRequest = true)
     boolean getHelp();
 }
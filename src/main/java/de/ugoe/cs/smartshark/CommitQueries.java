@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs.smartshark;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import de.ugoe.cs.smartshark.model.Commit;
+import de.ugoe.cs.smartshark.model.VCSSystem;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.query.Query;
+
+/**
+ * Creates the queries for commits of a vcs system. Only the fields that are used by the plugin are fetched and the
+ * commits can be restricted by their committer date and by a revision range.
+ *
+ * A revision range restricts the queries to the committer dates of the commits in the range. The streamed commits
+ * then need to be filtered with {@link #accepts(Commit)}, which checks the revision hashes of the range. These are
+ * held in a {@link SpillingIdSet}, so that the instance needs to be closed. Commits that are not fetched by the
+ * queries (e.g., the commits of travis builds) can be filtered with the same method.
+ */
+public class CommitQueries implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(CommitQueries.class.getName());
+
+    // Compound indexes that support the queries below
+    private static final List<List<String>> REQUIRED_INDEXES = Arrays.asList(
+            Arrays.asList("vcs_system_id", "revision_hash"),
+            Arrays.asList("vcs_system_id", "committer_date"),
+            Arrays.asList("vcs_system_id", "labels.adjustedszz_bugfix", "committer_date")
+    );
+
+    // Margin around the committer dates of a revision range, as the dates in the database may be stored with the
+    // local time of the committer instead of UTC
+    private static final long RANGE_MARGIN = TimeUnit.DAYS.toMillis(1);
+
+    private final Datastore datastore;
+    private final VCSSystem vcsSystem;
+    private Date since;
+    private Date until;
+    private SpillingIdSet revisionHashes;
+
+    /**
+     * @param datastore datastore of the smartshark database
+     * @param vcsSystem vcs system of the commits
+     * @param repository repository to resolve the revision range
+     * @param since only commits committed on or after this date/instant (ISO-8601), can be null
+     * @param until only commits committed on or before this date/instant (ISO-8601), can be null
+     * @param revRange only commits in this revision range ("rev", "from..to" or "from...to"), can be null
+     * @param inMemoryIds number of revision hashes of the range that are held in memory before they are spilled
+     * @throws IOException if the revision range could not be resolved
+     * @throws IllegalArgumentException if since or until are no valid dates or the revision range is malformed
+     */
+    public CommitQueries(Datastore datastore, VCSSystem vcsSystem, Repository repository, String since,
+                         String until, String revRange, int inMemoryIds) throws IOException {
+        this.datastore = datastore;
+        this.vcsSystem = vcsSystem;
+        this.since = since == null ? null : parseDate("--since", since, false);
+        this.until = until == null ? null : parseDate("--until", until, true);
+        if(revRange != null) {
+            resolveRevisionRange(repository, revRange, inMemoryIds);
+        }
+    }
+
+    /**
+     * Checks the values of the commit filters before a run starts, so that the run does not fail after it has already
+     * stored results.
+     *
+     * @param cliArguments arguments of the run
+     * @throws IllegalArgumentException if a filter has an invalid value or the strategy does not support the filters
+     */
+    public static void validateArguments(CLIArguments cliArguments) {
+        if(cliArguments.getSince() != null) {
+            parseDate("--since", cliArguments.getSince(), false);
+        }
+        if(cliArguments.getUntil() != null) {
+            parseDate("--until", cliArguments.getUntil(), true);
+        }
+        if(cliArguments.getRevRange() != null) {
+            RevisionRange.parse(cliArguments.getRevRange());
+        }
+
+        boolean filtered = cliArguments.getSince() != null || cliArguments.getUntil() != null ||
+                cliArguments.getRevRange() != null;
+        if(filtered && "single".equalsIgnoreCase(cliArguments.getStrategy())) {
+            throw new IllegalArgumentException("--since, --until and --rev-range can not be used with the single " +
+                    "strategy, which compares the commits given by --sha1 and --sha2");
+        }
+    }
+
+    /**
+     * @return query for all commits within the configured filters, oldest first
+     */
+    public Query<Commit> allCommits() {
+        return filtered(project(datastore.createQuery(Commit.class)
+                .field("vcs_system_id").equal(vcsSystem.getId())))
+                .order("committer_date");
+    }
+
+    /**
+     * @return query for all bugfix commits within the configured filters, oldest first
+     */
+    public Query<Commit> bugfixCommits() {
+        return filtered(project(datastore.createQuery(Commit.class)
+                .field("vcs_system_id").equal(vcsSystem.getId())
+                .field("labels.adjustedszz_bugfix").equal(true)))
+                .order("committer_date");
+    }
+
+    /**
+     * Checks, if a commit is within the committer dates and the revision range. The commits of {@link #allCommits()}
+     * and {@link #bugfixCommits()} are always within the dates.
+     *
+     * @param commit commit with its revision hash and committer date
+     * @return true, if the commit is within all configured filters
+     * @throws IOException if the spilled revision hashes can not be read
+     */
+    public boolean accepts(Commit commit) throws IOException {
+        Date committerDate = commit.getCommitterDate();
+        if(since != null && (committerDate == null || committerDate.before(since))) {
+            return false;
+        }
+        if(until != null && (committerDate == null || committerDate.after(until))) {
+            return false;
+        }
+        return revisionHashes == null || revisionHashes.contains(toRaw(commit.getRevisionHash()));
+    }
+
+    public Commit getByRevisionHash(String revisionHash) {
+        return project(datastore.createQuery(Commit.class)
+                .field("vcs_system_id").equal(vcsSystem.getId())
+                .field("revision_hash").equal(revisionHash))
+                .get();
+    }
+
+    public Commit getById(ObjectId id) {
+        return project(datastore.createQuery(Commit.class)
+                .field("id").equal(id))
+                .get();
+    }
+
+    /**
+     * Checks, if the commit collection has indexes that support the queries and logs the commands to create missing
+     * ones. The indexes are not created, as the collection is owned by vcsSHARK.
+     */
+    public void verifyIndexes() {
+        List<List<String>> existingIndexes = new ArrayList<>();
+        try {
+            for(DBObject index : datastore.getCollection(Commit.class).getIndexInfo()) {
+                existingIndexes.add(new ArrayList<>(((DBObject) index.get("key")).keySet()));
+            }
+        } catch (MongoException e) {
+            LOGGER.warn("Could not verify the indexes of the commit collection: " + e.getMessage());
+            return;
+        }
+
+        for(List<String> requiredIndex : REQUIRED_INDEXES) {
+            boolean found = false;
+            for(List<String> existingIndex : existingIndexes) {
+                if(existingIndex.size() >= requiredIndex.size() &&
+                        existingIndex.subList(0, requiredIndex.size()).equals(requiredIndex)) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if(!found) {
+                StringBuilder keys = new StringBuilder("{");
+                for(String field : requiredIndex) {
+                    keys.append(keys.length() == 1 ? "" : ", ").append('"').append(field).append("\": 1");
+                }
+                keys.append('}');
+                LOGGER.warn("Missing index on commit collection, consider creating it with: " +
+                        "db.commit.createIndex({})", keys);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(revisionHashes != null) {
+            revisionHashes.close();
+        }
+    }
+
+    private Query<Commit> project(Query<Commit> query) {
+        return query
+                .project("revision_hash", true)
+                .project("parents", true)
+                .project("committer_date", true);
+    }
+
+    private Query<Commit> filtered(Query<Commit> query) {
+        if(since != null) {
+            query.field("committer_date").greaterThanOrEq(since);
+        }
+        if(until != null) {
+            query.field("committer_date").lessThanOrEq(until);
+        }
+        return query;
+    }
+
+    /**
+     * Parses an ISO-8601 date (e.g., 2018-01-31) or instant (e.g., 2018-01-31T12:00:00Z). Dates are interpreted in
+     * UTC and, for the end of a range, include the whole day.
+     */
+    private static Date parseDate(String option, String value, boolean endOfRange) {
+        try {
+            LocalDate date = LocalDate.parse(value);
+            if(endOfRange) {
+                return Date.from(date.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().minusMillis(1));
+            }
+            return Date.from(date.atStartOfDay(ZoneOffset.UTC).toInstant());
+        } catch (DateTimeParseException e) {
+            try {
+                return Date.from(Instant.parse(value));
+            } catch (DateTimeParseException e2) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value + " (expected an " +
+                        "ISO-8601 date like 2018-01-31 or instant like 2018-01-31T12:00:00Z)");
+            }
+        }
+    }
+
+    /**
+     * Resolves a revision range like git log does: "to" are all ancestors of to (inclusive), "from..to" excludes
+     * the ancestors of from and "from...to" are the commits that are ancestors of only one of both. The queries are
+     * narrowed to the committer dates of the range.
+     */
+    private void resolveRevisionRange(Repository repository, String revRange, int inMemoryIds) throws IOException {
+        RevisionRange range = RevisionRange.parse(revRange);
+
+        revisionHashes = new SpillingIdSet(Constants.OBJECT_ID_LENGTH, inMemoryIds);
+        long firstCommitTime = Long.MAX_VALUE;
+        long lastCommitTime = Long.MIN_VALUE;
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        try(RevWalk walk = new RevWalk(repository)) {
+            RevCommit to = walk.parseCommit(resolve(repository, range.to));
+            walk.markStart(to);
+            if(range.from != null) {
+                RevCommit from = walk.parseCommit(resolve(repository, range.from));
+                if(range.symmetric) {
+                    walk.markStart(from);
+                    for(RevCommit mergeBase : findMergeBases(repository, from, to)) {
+                        walk.markUninteresting(walk.parseCommit(mergeBase));
+                    }
+                } else {
+                    walk.markUninteresting(from);
+                }
+            }
+            for(RevCommit commit : walk) {
+                commit.copyRawTo(raw, 0);
+                revisionHashes.add(raw);
+                firstCommitTime = Math.min(firstCommitTime, commit.getCommitTime());
+                lastCommitTime = Math.max(lastCommitTime, commit.getCommitTime());
+            }
+        }
+        LOGGER.debug("Revision range {} contains {} commits.", revRange, revisionHashes.size());
+
+        if(revisionHashes.size() == 0) {
+            // An empty range matches no commit
+            since = new Date(1);
+            until = new Date(0);
+            return;
+        }
+
+        // Commit times of git are in seconds
+        Date rangeSince = new Date(TimeUnit.SECONDS.toMillis(firstCommitTime) - RANGE_MARGIN);
+        Date rangeUntil = new Date(TimeUnit.SECONDS.toMillis(lastCommitTime) + 999 + RANGE_MARGIN);
+        since = since == null || rangeSince.after(since) ? rangeSince : since;
+        until = until == null || rangeUntil.before(until) ? rangeUntil : until;
+    }
+
+    private static byte[] toRaw(String revisionHash) {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        org.eclipse.jgit.lib.ObjectId.fromString(revisionHash).copyRawTo(raw, 0);
+        return raw;
+    }
+
+    private static List<RevCommit> findMergeBases(Repository repository, RevCommit first, RevCommit second)
+            throws IOException {
+        List<RevCommit> mergeBases = new ArrayList<>();
+        try(RevWalk walk = new RevWalk(repository)) {
+            walk.setRevFilter(RevFilter.MERGE_BASE);
+            walk.markStart(walk.parseCommit(first));
+            walk.markStart(walk.parseCommit(second));
+            for(RevCommit mergeBase : walk) {
+                mergeBases.add(mergeBase);
+            }
+        }
+        return mergeBases;
+    }
+
+    private static org.eclipse.jgit.lib.ObjectId resolve(Repository repository, String revision) throws IOException {
+        org.eclipse.jgit.lib.ObjectId id = repository.resolve(revision);
+        if(id == null) {
+            throw new IOException("Could not resolve revision " + revision + " of --rev-range");
+        }
+        return id;
+    }
+
+    /**
+     * Revisions of a range in the syntax of git log. An omitted revision in "from.." or "..to" means HEAD.
+     */
+    private static final class RevisionRange {
+        private final String from;
+        private final String to;
+        private final boolean symmetric;
+
+        private RevisionRange(String from, String to, boolean symmetric) {
+            this.from = from;
+            this.to = to;
+            this.symmetric = symmetric;
+        }
+
+        private static RevisionRange parse(String value) {
+            int separator = value.indexOf("..");
+            if(separator == -1) {
+                checkRevision(value, value);
+                return new RevisionRange(null, value, false);
+            }
+
+            boolean symmetric = value.startsWith("...", separator);
+            String from = value.substring(0, separator);
+            String to = value.substring(separator + (symmetric ? 3 : 2));
+            if(from.isEmpty() && to.isEmpty()) {
+                throw invalid(value);
+            }
+            from = from.isEmpty() ? Constants.HEAD : from;
+            to = to.isEmpty() ? Constants.HEAD : to;
+            checkRevision(value, from);
+            checkRevision(value, to);
+            return new RevisionRange(from, to, symmetric);
+        }
+
+        private static void checkRevision(String value, String revision) {
+            if(revision.isEmpty() || revision.contains("..") || revision.trim().length() != revision.length()) {
+                throw invalid(value);
+            }
+        }
+
+        private static IllegalArgumentException invalid(String value) {
+            return new IllegalArgumentException("Invalid value for --rev-range: " + value + " (expected <rev>, " +
+                    "<from>..<to> or <from>...<to>, where an omitted <from> or <to> means HEAD)");
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs.smartshark;
+
+import de.ugoe.cs.HunkScope;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Collects how often the hunk-scoped distillation could scope a file and, in validation mode, how well its results
+ * match the full-file distillation of the same file and how long both took.
+ */
+public class HunkScopeStatistics {
+    private static final Logger LOGGER = LogManager.getLogger(HunkScopeStatistics.class.getName());
+
+    /**
+     * Share of the validated files whose label counts may differ from the full-file distillation, so that the
+     * hunk-scoped distillation can be used for a repository.
+     */
+    public static final double MAX_MISMATCH_RATE = 0.02;
+
+    private int scopedFiles;
+    private int fallbackFiles;
+    private long prunedMembers;
+    private long scopedNanos;
+
+    private int validatedFiles;
+    private int mismatchedFiles;
+    private long differingChanges;
+    private long fullNanos;
+
+    /**
+     * Records one hunk-scoped distillation.
+     *
+     * @param scope scope that was used or null, if the full files were used as fallback
+     * @param nanos time needed for scoping and distilling
+     */
+    public void recordScoped(HunkScope scope, long nanos) {
+        if(scope == null) {
+            fallbackFiles++;
+        } else {
+            scopedFiles++;
+            prunedMembers += scope.getPrunedMembers();
+        }
+        scopedNanos += nanos;
+    }
+
+    /**
+     * Records the comparison of a hunk-scoped distillation with the full-file distillation of the same file.
+     *
+     * @param path path of the file
+     * @param scopedResults labels of the hunk-scoped distillation
+     * @param fullResults labels of the full-file distillation
+     * @param nanos time needed for the full-file distillation
+     */
+    public void recordValidation(String path, Map<String, Integer> scopedResults, Map<String, Integer> fullResults,
+                                 long nanos) {
+        validatedFiles++;
+        fullNanos += nanos;
+
+        Set<String> labels = new HashSet<>(scopedResults.keySet());
+        labels.addAll(fullResults.keySet());
+        long difference = 0;
+        for(String label : labels) {
+            difference += Math.abs(scopedResults.getOrDefault(label, 0) - fullResults.getOrDefault(label, 0));
+        }
+
+        if(difference > 0) {
+            mismatchedFiles++;
+            differingChanges += difference;
+            LOGGER.warn("Hunk-scoped distillation of {} differs from full-file distillation: {} vs. {}", path,
+                    scopedResults, fullResults);
+        }
+    }
+
+    public int getScopedFiles() {
+        return scopedFiles;
+    }
+
+    public int getFallbackFiles() {
+        return fallbackFiles;
+    }
+
+    public long getPrunedMembers() {
+        return prunedMembers;
+    }
+
+    public int getValidatedFiles() {
+        return validatedFiles;
+    }
+
+    public int getMismatchedFiles() {
+        return mismatchedFiles;
+    }
+
+    public long getDifferingChanges() {
+        return differingChanges;
+    }
+
+    /**
+     * @return share of the validated files whose label counts differ, 0 if no file was validated
+     */
+    public double getMismatchRate() {
+        return validatedFiles == 0 ? 0 : (double) mismatchedFiles / validatedFiles;
+    }
+
+    /**
+     * @return true, if the mismatch rate does not exceed {@link #MAX_MISMATCH_RATE}
+     */
+    public boolean isWithinTolerance() {
+        return getMismatchRate() <= MAX_MISMATCH_RATE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Hunk-scoped distillation: %d files scoped (%d members pruned), %d fallbacks, " +
+                "%.1f ms", scopedFiles, prunedMembers, fallbackFiles, scopedNanos / 1e6));
+        if(validatedFiles > 0) {
+            summary.append(String.format("; validation: %d of %d files match (%.2f%% differ, tolerance %.2f%%, %d " +
+                    "differing changes), full-file distillation %.1f ms", validatedFiles - mismatchedFiles,
+                    validatedFiles, getMismatchRate() * 100, MAX_MISMATCH_RATE * 100, differingChanges,
+                    fullNanos / 1e6));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs.smartshark;
+
+/**
+ * Heap budget for the structures of the plugin itself (database batches, caches, id sets). The memory needed by JGit
+ * and ChangeDistiller for a single comparison is not part of the budget.
+ *
+ * A quarter of the budget is used for the batches fetched from the database (and the batch of commits that is
+ * ordered before comparing them), a quarter for caching commits and a quarter for each of the two id sets, i.e., the
+ * visited commits of the travis strategy and the revision hashes of a revision range. The id sets are spilled to disk
+ * if they grow larger.
+ */
+public class MemoryBudget {
+    // Rough heap size of a hydrated commit document
+    private static final long ESTIMATED_COMMIT_BYTES = 2048;
+
+    private static final int MIN_BATCH_SIZE = 10;
+    private static final int MIN_CACHE_SIZE = 16;
+    private static final int MIN_IN_MEMORY_IDS = 1024;
+
+    private final long bytes;
+
+    public MemoryBudget(long bytes) {
+        if(bytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive, but was " + bytes);
+        }
+        this.bytes = bytes;
+    }
+
+    /**
+     * Creates the budget from a size in megabytes. If the size is not positive, a quarter of the maximum heap is
+     * used.
+     *
+     * @param megabytes budget in megabytes
+     * @return memory budget
+     */
+    public static MemoryBudget fromMegabytes(int megabytes) {
+        if(megabytes <= 0) {
+            return new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+        }
+        return new MemoryBudget(megabytes * 1024L * 1024L);
+    }
+
+    /**
+     * @return number of documents that are fetched from the database at once
+     */
+    public int getBatchSize() {
+        return clamp(bytes / 4 / ESTIMATED_COMMIT_BYTES, MIN_BATCH_SIZE);
+    }
+
+    /**
+     * @return number of commits that are kept in the commit cache
+     */
+    public int getCacheSize() {
+        return clamp(bytes / 4 / ESTIMATED_COMMIT_BYTES, MIN_CACHE_SIZE);
+    }
+
+    /**
+     * @param idBytes length of the ids of the set in bytes
+     * @return number of ids that an id set may hold in memory before it is spilled to disk
+     */
+    public int getInMemoryIds(int idBytes) {
+        return clamp(bytes / 4 / SpillingIdSet.bytesPerId(idBytes), MIN_IN_MEMORY_IDS);
+    }
+
+    private static int clamp(long value, int min) {
+        return (int) Math.max(min, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget{bytes=" + bytes + ", batchSize=" + getBatchSize() + ", cacheSize=" + getCacheSize() +
+                ", inMemoryObjectIds=" + getInMemoryIds(SpillingIdSet.OBJECT_ID_BYTES) + "}";
+    }
+}
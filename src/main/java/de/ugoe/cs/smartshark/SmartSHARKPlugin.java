@@ -19,121 +19,166 @@ package de.ugoe.cs.smartshark;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import de.ugoe.cs.BugFixClassifier;
+import de.ugoe.cs.HunkScope;
 import de.ugoe.cs.smartshark.model.Commit;
 import de.ugoe.cs.smartshark.model.CommitChanges;
 import de.ugoe.cs.smartshark.model.TravisBuild;
 import de.ugoe.cs.smartshark.model.VCSSystem;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import org.apache.commons.io.FileUtils;
+import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bson.types.ObjectId;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.eclipse.jgit.util.io.DisabledOutputStream;
 import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.Morphia;
+import org.mongodb.morphia.query.FindOptions;
+import org.mongodb.morphia.query.MorphiaIterator;
+import org.mongodb.morphia.query.Query;
 
 /**
  * @author Fabian Trautsch
  */
-public class SmartSHARKPlugin {
+public class SmartSHARKPlugin implements AutoCloseable {
     private static final Logger LOGGER = LogManager.getLogger(SmartSHARKPlugin.class.getName());
 
     private final Datastore datastore;
     private final VCSSystem vcsSystem;
-    private Path vcsDirectory;
     private Git gitHook;
     private Repository originalRepo;
+    private final boolean hunkScoped;
+    private final boolean hunkValidation;
+    private final HunkScopeStatistics hunkScopeStatistics = new HunkScopeStatistics();
+    private final MemoryBudget memoryBudget;
+    private final Map<String, Commit> commitCache;
+    private final CommitQueries commitQueries;
+
+    // Long-lived reader and formatter, which are reused for all comparisons. Not thread-safe.
+    private final ObjectReader reader;
+    private final DiffFormatter diffFormatter;
+    private final CanonicalTreeParser oldTreeIter = new CanonicalTreeParser();
+    private final CanonicalTreeParser newTreeIter = new CanonicalTreeParser();
+
+    // Raw tree of the new commit of the previous comparison, which is the old tree of the next one in linear history
+    private String previousCommitHash;
+    private byte[] previousTree;
 
     public SmartSHARKPlugin(CLIArguments cliArguments) throws IOException {
-        // Initialize db connection + values
-        final Morphia morphia = new Morphia();
-        morphia.mapPackage("de.ugoe.cs.smartshark.model");
-
-        MongoClientURI uri = new MongoClientURI(Utils.createMongoDBURI(cliArguments.getUsername(),
-                cliArguments.getPassword(), cliArguments.getHost(), cliArguments.getPort(),
-                cliArguments.getAuthenticationDB(), cliArguments.getSSLEnabled()));
-        MongoClient mongoClient = new MongoClient(uri);
-        datastore = morphia.createDatastore(mongoClient, cliArguments.getDatabase());
+        this(createDatastore(cliArguments), cliArguments);
+    }
 
+    SmartSHARKPlugin(Datastore datastore, CLIArguments cliArguments) throws IOException {
+        this.datastore = datastore;
 
         // Clone the repository for working with it later on, so that we do not need to clone it after
         // each use
         vcsSystem = datastore.createQuery(VCSSystem.class)
                 .field("url").equal(cliArguments.getVCSSystemURL()).get();
 
-        vcsDirectory = Paths.get(cliArguments.getInput());
         gitHook = Git.open(new File(cliArguments.getInput()));
         originalRepo = gitHook.getRepository();
+        // The validation compares the hunk-scoped with the full-file distillation
+        hunkValidation = cliArguments.getHunkValidation();
+        hunkScoped = cliArguments.getHunkScoped() || hunkValidation;
+        reader = originalRepo.newObjectReader();
+        diffFormatter = new DiffFormatter(DisabledOutputStream.INSTANCE);
+        diffFormatter.setReader(reader, originalRepo.getConfig());
+
+        // Size the caches and database batches according to the available memory
+        memoryBudget = MemoryBudget.fromMegabytes(cliArguments.getMemoryBudget());
+        final int cacheSize = memoryBudget.getCacheSize();
+        commitCache = new LinkedHashMap<String, Commit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        LOGGER.debug("Using {}", memoryBudget);
+
+        commitQueries = new CommitQueries(datastore, vcsSystem, originalRepo, cliArguments.getSince(),
+                cliArguments.getUntil(), cliArguments.getRevRange(),
+                memoryBudget.getInMemoryIds(Constants.OBJECT_ID_LENGTH));
+        commitQueries.verifyIndexes();
     }
 
     public void storeDataViaTravis() {
-        List<TravisBuild> travisBuilds = datastore.createQuery(TravisBuild.class)
+        Query<TravisBuild> query = datastore.createQuery(TravisBuild.class)
                 .field("state").notEqual("passed")
-                .field("vcs_system_id").equal(vcsSystem.getId())
-                .asList();
-
-        LOGGER.debug("Found {} travis builds via vcsSystem {}", travisBuilds.size(), vcsSystem.getUrl());
-
-        for(TravisBuild trBuild: travisBuilds) {
-            // Exclude travis builds, where the commit was not mined (e.g., pull requests)
-            if(trBuild.getCommitId() == null) {
-                continue;
-            }
-
-            Commit commit = datastore.createQuery(Commit.class)
-                    .field("id").equal(trBuild.getCommitId()).get();
+                .field("vcs_system_id").equal(vcsSystem.getId());
+
+        MorphiaIterator<TravisBuild, TravisBuild> travisBuilds = query.fetch(
+                new FindOptions().batchSize(memoryBudget.getBatchSize()));
+        int inMemoryIds = memoryBudget.getInMemoryIds(SpillingIdSet.OBJECT_ID_BYTES);
+        try(SpillingIdSet visitedCommits = new SpillingIdSet(inMemoryIds)) {
+            int builds = 0;
+            for(TravisBuild trBuild: travisBuilds) {
+                builds++;
+                // Exclude travis builds, where the commit was not mined (e.g., pull requests) and commits that
+                // were already compared for a previous build of the same commit
+                if(trBuild.getCommitId() == null || !visitedCommits.add(trBuild.getCommitId())) {
+                    continue;
+                }
 
-            Commit foundCommit = getCommitFromPreviousSuccessfulBuild(commit);
+                Commit commit = commitQueries.getById(trBuild.getCommitId());
+                if(commit == null || !commitQueries.accepts(commit)) {
+                    continue;
+                }
 
-            // WorkingCommitHash can be null, if we encounter a merge commit
-            if(foundCommit != null) {
-                LOGGER.info("Comparing commits {} and {}.", foundCommit.getRevisionHash(), commit.getRevisionHash());
-                try {
-                    Map<ObjectId, Map<String, Integer>> changes = getBugClassifications(foundCommit.getRevisionHash(), commit.getRevisionHash());
-                    storeResultInMongoDB(foundCommit.getId(), commit.getId(), changes);
-                } catch (IOException e) {
-                    LOGGER.warn("Could not get classification for commits {} and {}: "+e.getMessage(),
-                            foundCommit.getRevisionHash(), commit.getRevisionHash());
+                Commit foundCommit = getCommitFromPreviousSuccessfulBuild(commit);
+
+                // WorkingCommitHash can be null, if we encounter a merge commit
+                if(foundCommit != null) {
+                    LOGGER.info("Comparing commits {} and {}.", foundCommit.getRevisionHash(), commit.getRevisionHash());
+                    try {
+                        Map<ObjectId, Map<String, Integer>> changes = getBugClassifications(foundCommit.getRevisionHash(), commit.getRevisionHash());
+                        storeResultInMongoDB(foundCommit.getId(), commit.getId(), changes);
+                    } catch (IOException e) {
+                        LOGGER.warn("Could not get classification for commits {} and {}: "+e.getMessage(),
+                                foundCommit.getRevisionHash(), commit.getRevisionHash());
+                    }
                 }
             }
+            LOGGER.debug("Found {} travis builds of {} commits via vcsSystem {}", builds, visitedCommits.size(),
+                    vcsSystem.getUrl());
+        } catch (IOException e) {
+            LOGGER.catching(e);
+        } finally {
+            travisBuilds.close();
         }
     }
 
     private Map<ObjectId, Map<String, Integer>> getBugClassifications(String commit1Hash, String commit2Hash) throws IOException {
         // get all changed files between these revisions
-        ObjectReader reader = originalRepo.newObjectReader();
-        CanonicalTreeParser oldTreeIter = new CanonicalTreeParser();
-        org.eclipse.jgit.lib.ObjectId oldTree = originalRepo.resolve(commit1Hash+"^{tree}");
-        oldTreeIter.reset(reader, oldTree);
+        oldTreeIter.reset(readTree(commit1Hash));
 
-        CanonicalTreeParser newTreeIter = new CanonicalTreeParser();
-        org.eclipse.jgit.lib.ObjectId newTree = originalRepo.resolve(commit2Hash+"^{tree}");
-        newTreeIter.reset(reader, newTree);
+        byte[] newTree = readTree(commit2Hash);
+        newTreeIter.reset(newTree);
+        previousCommitHash = commit2Hash;
+        previousTree = newTree;
 
-        DiffFormatter diffFormatter = new DiffFormatter(DisabledOutputStream.INSTANCE);
-        diffFormatter.setRepository(originalRepo);
         List<DiffEntry> entries = diffFormatter.scan(oldTreeIter, newTreeIter);
 
         // Go through the diff between these commits and calculate for each changed file and each change the change
         // type
         Map<ObjectId, Map<String, Integer>> classifications = new HashMap<>();
         for(DiffEntry entry : entries) {
-            Path left = null;
-            Path right = null;
             try {
                 // We can not distill changes, if there are none -> new file was added here. Maybe interface change?
                 if (entry.getOldPath().equals("/dev/null") || entry.getNewPath().equals("/dev/null") ||
@@ -142,14 +187,9 @@ public class SmartSHARKPlugin {
                     continue;
                 }
 
-                left = Files.createTempFile("bc1-", "-suff");
-                right = Files.createTempFile("bc2-", "-suff");
-
-                gitHook.checkout().setForce(true).setStartPoint(commit1Hash).addPath(entry.getOldPath()).call();
-                FileUtils.copyFile(Paths.get(vcsDirectory.toString(), entry.getOldPath()).toFile(), left.toFile());
-
-                gitHook.checkout().setForce(true).setStartPoint(commit2Hash).addPath(entry.getNewPath()).call();
-                FileUtils.copyFile(Paths.get(vcsDirectory.toString(), entry.getNewPath()).toFile(), right.toFile());
+                // Read the blobs directly from the object database instead of checking them out
+                byte[] oldContent = readBlob(entry.getOldId().toObjectId());
+                byte[] newContent = readBlob(entry.getNewId().toObjectId());
 
                 // Get files from database
                 de.ugoe.cs.smartshark.model.File dbFile = datastore.createQuery(de.ugoe.cs.smartshark.model.File.class)
@@ -158,7 +198,12 @@ public class SmartSHARKPlugin {
                         .get();
 
 
-                Map<String, Integer> results = BugFixClassifier.getBugClassifications(left, right);
+                Map<String, Integer> results;
+                if(hunkScoped) {
+                    results = getHunkScopedClassifications(entry, oldContent, newContent);
+                } else {
+                    results = BugFixClassifier.getBugClassifications(oldContent, newContent);
+                }
 
                 // If we could not distill changes, we declare it as other
                 if (results.isEmpty()) {
@@ -168,13 +213,8 @@ public class SmartSHARKPlugin {
                 }
 
                 classifications.put(dbFile.getId(), results);
-            } catch (GitAPIException | IOException e) {
+            } catch (IOException e) {
                 LOGGER.catching(e);
-            } finally {
-                if (left != null)
-                    Files.deleteIfExists(left);
-                if (right != null)
-                    Files.deleteIfExists(right);
             }
         }
 
@@ -184,12 +224,83 @@ public class SmartSHARKPlugin {
         return classifications;
     }
 
-    public void storeDataViaAllCommits() {
-        List<Commit> commits = datastore.createQuery(Commit.class)
-                .field("vcs_system_id").equal(vcsSystem.getId())
-                .order("-committer_date").asList();
+    private static Datastore createDatastore(CLIArguments cliArguments) {
+        // Initialize db connection + values
+        final Morphia morphia = new Morphia();
+        morphia.mapPackage("de.ugoe.cs.smartshark.model");
 
-        storeDataOfCommits(commits);
+        MongoClientURI uri = new MongoClientURI(Utils.createMongoDBURI(cliArguments.getUsername(),
+                cliArguments.getPassword(), cliArguments.getHost(), cliArguments.getPort(),
+                cliArguments.getAuthenticationDB(), cliArguments.getSSLEnabled()));
+        MongoClient mongoClient = new MongoClient(uri);
+        return morphia.createDatastore(mongoClient, cliArguments.getDatabase());
+    }
+
+    private byte[] readTree(String commitHash) throws IOException {
+        if(commitHash.equals(previousCommitHash)) {
+            return previousTree;
+        }
+        org.eclipse.jgit.lib.ObjectId tree = originalRepo.resolve(commitHash+"^{tree}");
+        if(tree == null) {
+            throw new IOException("Could not resolve tree of commit " + commitHash);
+        }
+        // The parser does not modify the bytes, so the cached ones of the reader can be used directly
+        return reader.open(tree, Constants.OBJ_TREE).getCachedBytes();
+    }
+
+    private byte[] readBlob(org.eclipse.jgit.lib.ObjectId blobId) throws IOException {
+        return reader.open(blobId, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE);
+    }
+
+    private Map<String, Integer> getHunkScopedClassifications(DiffEntry entry, byte[] oldContent, byte[] newContent)
+            throws IOException {
+        long start = System.nanoTime();
+        EditList edits = diffFormatter.toFileHeader(entry).toEditList();
+        HunkScope scope = HunkScope.of(oldContent, newContent, edits);
+        Map<String, Integer> results;
+        if(scope != null) {
+            results = BugFixClassifier.getBugClassifications(scope);
+        } else {
+            LOGGER.debug("Could not scope {} to the changed hunks, using full files.", entry.getNewPath());
+            results = BugFixClassifier.getBugClassifications(oldContent, newContent);
+        }
+        hunkScopeStatistics.recordScoped(scope, System.nanoTime() - start);
+
+        if(!hunkValidation) {
+            return results;
+        }
+
+        // Store the full-file results, the hunk-scoped ones are only compared to them
+        start = System.nanoTime();
+        Map<String, Integer> fullResults = BugFixClassifier.getBugClassifications(oldContent, newContent);
+        hunkScopeStatistics.recordValidation(entry.getNewPath(), results, fullResults, System.nanoTime() - start);
+        return fullResults;
+    }
+
+    HunkScopeStatistics getHunkScopeStatistics() {
+        return hunkScopeStatistics;
+    }
+
+    /**
+     * Releases the reader and formatter that are used for the comparisons and the repository.
+     */
+    @Override
+    public void close() throws IOException {
+        if(hunkScoped) {
+            LOGGER.info(hunkScopeStatistics);
+        }
+        if(hunkValidation && !hunkScopeStatistics.isWithinTolerance()) {
+            LOGGER.error("Hunk-scoped distillation differs for more than {}% of the files of {}, it should not be " +
+                    "used for this repository.", HunkScopeStatistics.MAX_MISMATCH_RATE * 100, vcsSystem.getUrl());
+        }
+        diffFormatter.close();
+        reader.close();
+        gitHook.close();
+        commitQueries.close();
+    }
+
+    public void storeDataViaAllCommits() {
+        storeDataOfCommits(commitQueries.allCommits());
     }
 
     public void storeSingleData(String sha1, String sha2) {
@@ -197,15 +308,8 @@ public class SmartSHARKPlugin {
         try {
             Map<ObjectId, Map<String, Integer>> changes = getBugClassifications(sha1, sha2);
 
-            Commit commit1 = datastore.createQuery(Commit.class)
-                    .field("vcs_system_id").equal(vcsSystem.getId())
-                    .field("revision_hash").equal(sha1)
-                    .get();
-
-            Commit commit2 = datastore.createQuery(Commit.class)
-                    .field("vcs_system_id").equal(vcsSystem.getId())
-                    .field("revision_hash").equal(sha2)
-                    .get();
+            Commit commit1 = commitQueries.getByRevisionHash(sha1);
+            Commit commit2 = commitQueries.getByRevisionHash(sha2);
 
             storeResultInMongoDB(commit1.getId(), commit2.getId(), changes);
         } catch (IOException e) {
@@ -215,34 +319,91 @@ public class SmartSHARKPlugin {
     }
 
     public void storeDataViaBugfixCommits() {
-        List<Commit> commits = datastore.createQuery(Commit.class)
-                .field("vcs_system_id").equal(vcsSystem.getId())
-                .field("labels.adjustedszz_bugfix").equal(true)
-                .order("-committer_date").asList();
+        storeDataOfCommits(commitQueries.bugfixCommits());
+    }
+
+    private void storeDataOfCommits(Query<Commit> query) {
+        // Fetch the commits in batches instead of loading all of them into memory. The buffered batch is bounded by
+        // the batch size of the memory budget.
+        int batchSize = memoryBudget.getBatchSize();
+        MorphiaIterator<Commit, Commit> commits = query.fetch(new FindOptions().batchSize(batchSize));
+        try {
+            List<Commit> batch = new ArrayList<>(batchSize);
+            while(commits.hasNext()) {
+                Commit commit = commits.next();
+                if(commitQueries.accepts(commit)) {
+                    batch.add(commit);
+                }
+                if(!batch.isEmpty() && (batch.size() == batchSize || !commits.hasNext())) {
+                    for(Commit batchCommit : orderParentsFirst(batch)) {
+                        storeDataOfCommit(batchCommit);
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.catching(e);
+        } finally {
+            commits.close();
+        }
+    }
 
-        storeDataOfCommits(commits);
+    private void storeDataOfCommit(Commit commit) {
+        // We can not compare without parents
+        if (commit.getParents().size() == 0) {
+            return;
+        }
+        // We always chose the first parent --> we expect that developers have merged the feature branch in the master branch
+        LOGGER.info("Comparing commits {} and {}.", commit.getParents().get(0), commit.getRevisionHash());
+        try {
+            Map<ObjectId, Map<String, Integer>> changes = getBugClassifications(commit.getParents().get(0), commit.getRevisionHash());
+            Commit parentCommit = getCommitByRevisionHash(commit.getParents().get(0));
+            storeResultInMongoDB(parentCommit.getId(), commit.getId(), changes);
+        } catch (IOException e) {
+            LOGGER.warn("Could not get classification for commits {} and {}: "+e.getMessage(),
+                    commit.getParents().get(0), commit.getRevisionHash());
+        }
     }
 
-    private void storeDataOfCommits(List<Commit> commits) {
-        for(Commit commit: commits) {
-            // We can not compare without parents
-            if (commit.getParents().size() == 0) {
-                continue;
+    /**
+     * Orders the commits of a batch, so that a first parent is compared right before its child. Hence, in linear
+     * history the new tree of one comparison is the old tree of the next one and can be reused. As the commits are
+     * queried oldest first, this also holds across batches, except for commits with the same committer date.
+     */
+    private static List<Commit> orderParentsFirst(List<Commit> batch) {
+        Map<String, Commit> commitsByHash = new HashMap<>();
+        for(Commit commit : batch) {
+            commitsByHash.put(commit.getRevisionHash(), commit);
+        }
+
+        List<Commit> ordered = new ArrayList<>(batch.size());
+        Set<String> added = new HashSet<>();
+        Deque<Commit> chain = new ArrayDeque<>();
+        // The batch is ordered oldest first. Parents from earlier batches were already compared before.
+        for(Commit commit : batch) {
+            // Walk up the first parents within the batch, and add the chain starting from the oldest commit
+            Commit current = commit;
+            while(current != null && !added.contains(current.getRevisionHash())) {
+                chain.push(current);
+                added.add(current.getRevisionHash());
+                current = current.getParents().isEmpty() ? null : commitsByHash.get(current.getParents().get(0));
             }
-            // We always chose the first parent --> we expect that developers have merged the feature branch in the master branch
-            LOGGER.info("Comparing commits {} and {}.", commit.getParents().get(0), commit.getRevisionHash());
-            try {
-                Map<ObjectId, Map<String, Integer>> changes = getBugClassifications(commit.getParents().get(0), commit.getRevisionHash());
-                Commit parentCommit = datastore.createQuery(Commit.class)
-                        .field("revision_hash").equal(commit.getParents().get(0))
-                        .field("vcs_system_id").equal(vcsSystem.getId())
-                        .get();
-                storeResultInMongoDB(parentCommit.getId(), commit.getId(), changes);
-            } catch (IOException e) {
-                LOGGER.warn("Could not get classification for commits {} and {}: "+e.getMessage(),
-                        commit.getParents().get(0), commit.getRevisionHash());
+            while(!chain.isEmpty()) {
+                ordered.add(chain.pop());
+            }
+        }
+        return ordered;
+    }
+
+    private Commit getCommitByRevisionHash(String revisionHash) {
+        Commit commit = commitCache.get(revisionHash);
+        if(commit == null) {
+            commit = commitQueries.getByRevisionHash(revisionHash);
+            if(commit != null) {
+                commitCache.put(revisionHash, commit);
             }
         }
+        return commit;
     }
 
     private Commit getCommitFromPreviousSuccessfulBuild(Commit startCommit) {
@@ -251,10 +412,7 @@ public class SmartSHARKPlugin {
 
         while(foundCommit == null) {
             // We always chose the first parent --> we expect that developers have merged the feature branch in the master branch
-            Commit parentCommit = datastore.createQuery(Commit.class)
-                    .field("vcs_system_id").equal(vcsSystem.getId())
-                    .field("revision_hash").equal(previousCommit.getParents().get(0))
-                    .get();
+            Commit parentCommit = getCommitByRevisionHash(previousCommit.getParents().get(0));
 
             TravisBuild trBuild = datastore.createQuery(TravisBuild.class)
                     .field("vcs_system_id").equal(vcsSystem.getId())
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs.smartshark;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.types.ObjectId;
+
+/**
+ * Set of fixed-length ids (e.g., ObjectIds of MongoDB or SHA-1 hashes of git), which is held in an open addressing
+ * hash table in memory until it reaches a given size. Afterwards, the table is moved into a temporary file, which is
+ * deleted on {@link #close()}.
+ *
+ * Each slot of the table consists of one byte that marks it as used, followed by the bytes of the id. As the table is
+ * at most half full, an id needs at most {@link #bytesPerId(int)} bytes of heap while the set is held in memory.
+ * When the spilled table grows, it is rehashed into a second file and the previous one is truncated right away, so
+ * that the set uses at most two files.
+ */
+public class SpillingIdSet implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(SpillingIdSet.class.getName());
+
+    // Length of an ObjectId of MongoDB
+    public static final int OBJECT_ID_BYTES = 12;
+    // Number of slots of the in-memory table before it grows for the first time
+    private static final int INITIAL_SLOTS = 64;
+    // Size of the chunks in which a spilled table is cleared and read for rehashing
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private final int idBytes;
+    private final int slotBytes;
+    private final long maxSlots;
+    private final int inMemoryLimit;
+
+    // Buffer for reading and writing a single slot
+    private final byte[] slot;
+    private final ByteBuffer slotBuffer;
+
+    // Table in memory, which is null after the set was spilled to disk
+    private byte[] table;
+    private Path file;
+    private FileChannel channel;
+    // File into which the spilled table is rehashed when it grows
+    private Path spareFile;
+    private FileChannel spareChannel;
+    private int slots;
+    private int size;
+    private boolean closed;
+
+    /**
+     * Creates a set for ObjectIds of MongoDB.
+     *
+     * @param inMemoryLimit number of ids that are held in memory before the set is spilled to disk
+     */
+    public SpillingIdSet(int inMemoryLimit) {
+        this(OBJECT_ID_BYTES, inMemoryLimit);
+    }
+
+    /**
+     * @param idBytes length of the ids in bytes
+     * @param inMemoryLimit number of ids that are held in memory before the set is spilled to disk
+     */
+    public SpillingIdSet(int idBytes, int inMemoryLimit) {
+        if(inMemoryLimit <= 0) {
+            throw new IllegalArgumentException("In-memory limit must be positive, but was " + inMemoryLimit);
+        }
+        this.idBytes = idBytes;
+        this.slotBytes = idBytes + 1;
+        this.maxSlots = Integer.MAX_VALUE / slotBytes;
+        this.inMemoryLimit = inMemoryLimit;
+        this.slot = new byte[slotBytes];
+        this.slotBuffer = ByteBuffer.wrap(slot);
+
+        slots = (int) Math.min(INITIAL_SLOTS, maxInMemorySlots());
+        table = new byte[slots * slotBytes];
+    }
+
+    /**
+     * @param idBytes length of the ids in bytes
+     * @return maximal number of heap bytes that an id needs while the set is held in memory
+     */
+    public static int bytesPerId(int idBytes) {
+        return 2 * (idBytes + 1);
+    }
+
+    public boolean add(ObjectId id) throws IOException {
+        return add(id.toByteArray());
+    }
+
+    public boolean add(byte[] id) throws IOException {
+        checkOpen();
+        checkLength(id);
+        if((long) (size + 1) * 2 > slots) {
+            if(table == null) {
+                grow((long) slots * 2);
+            } else if(size < inMemoryLimit) {
+                growInMemory();
+            } else if(contains(id)) {
+                return false;
+            } else {
+                spill();
+            }
+        }
+
+        if(insert(id)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(byte[] id) throws IOException {
+        checkOpen();
+        checkLength(id);
+        int index = firstSlot(id, slots);
+        while(readSlot(index)) {
+            if(matches(id)) {
+                return true;
+            }
+            index = (index + 1) % slots;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        table = null;
+        try {
+            releaseFile(channel, file);
+        } finally {
+            channel = null;
+            file = null;
+            releaseFile(spareChannel, spareFile);
+            spareChannel = null;
+            spareFile = null;
+        }
+    }
+
+    /**
+     * @return the temporary file of the spilled ids or null, if the ids are held in memory
+     */
+    Path getFile() {
+        return file;
+    }
+
+    private void checkOpen() {
+        if(closed) {
+            throw new IllegalStateException("Id set is already closed");
+        }
+    }
+
+    private void checkLength(byte[] id) {
+        if(id.length != idBytes) {
+            throw new IllegalArgumentException("Expected an id of " + idBytes + " bytes, but got " + id.length);
+        }
+    }
+
+    private long maxInMemorySlots() {
+        return Math.min(maxSlots, 2L * inMemoryLimit);
+    }
+
+    private void growInMemory() throws IOException {
+        byte[] previousTable = table;
+        int previousSlots = slots;
+        slots = (int) Math.min((long) slots * 2, maxInMemorySlots());
+        table = new byte[slots * slotBytes];
+        reinsert(previousTable, previousSlots);
+    }
+
+    private void spill() throws IOException {
+        LOGGER.debug("Spilling {} ids to disk.", size);
+        if((long) slots * 2 > maxSlots) {
+            throw new IOException("Can not store more than " + maxSlots / 2 + " ids.");
+        }
+        byte[] previousTable = table;
+        int previousSlots = slots;
+        file = Files.createTempFile("ids-", "-spill");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        table = null;
+        clear(channel, previousSlots * 2);
+        reinsert(previousTable, previousSlots);
+    }
+
+    private void grow(long newSlots) throws IOException {
+        if(newSlots > maxSlots) {
+            throw new IOException("Can not store more than " + maxSlots / 2 + " ids.");
+        }
+        if(spareFile == null) {
+            spareFile = Files.createTempFile("ids-", "-spill");
+            spareChannel = FileChannel.open(spareFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        // Swap the files, so that the new table is written into the spare one
+        Path previousFile = file;
+        FileChannel previousChannel = channel;
+        long previousBytes = (long) slots * slotBytes;
+        file = spareFile;
+        channel = spareChannel;
+        spareFile = previousFile;
+        spareChannel = previousChannel;
+        clear(channel, (int) newSlots);
+
+        byte[] chunk = new byte[CHUNK_BYTES / slotBytes * slotBytes];
+        for(long position = 0; position < previousBytes; position += chunk.length) {
+            int length = (int) Math.min(chunk.length, previousBytes - position);
+            read(previousChannel, ByteBuffer.wrap(chunk, 0, length), position);
+            reinsert(chunk, length / slotBytes);
+        }
+
+        // Free the disk space of the previous table, the file is reused when the table grows again
+        previousChannel.truncate(0);
+    }
+
+    /**
+     * Inserts the used slots of the given table part into the current table.
+     */
+    private void reinsert(byte[] entries, int entrySlots) throws IOException {
+        byte[] id = new byte[idBytes];
+        for(int i = 0; i < entrySlots; i++) {
+            if(entries[i * slotBytes] != 0) {
+                System.arraycopy(entries, i * slotBytes + 1, id, 0, idBytes);
+                insert(id);
+            }
+        }
+    }
+
+    /**
+     * Resizes the file to the given number of slots, which are all unused.
+     */
+    private void clear(FileChannel fileChannel, int newSlots) throws IOException {
+        fileChannel.truncate(0);
+        long bytes = (long) newSlots * slotBytes;
+        ByteBuffer zeros = ByteBuffer.allocate(CHUNK_BYTES);
+        for(long position = 0; position < bytes; position += CHUNK_BYTES) {
+            zeros.clear();
+            zeros.limit((int) Math.min(CHUNK_BYTES, bytes - position));
+            while(zeros.hasRemaining()) {
+                fileChannel.write(zeros, position + zeros.position());
+            }
+        }
+        slots = newSlots;
+    }
+
+    private boolean insert(byte[] id) throws IOException {
+        int index = firstSlot(id, slots);
+        while(readSlot(index)) {
+            if(matches(id)) {
+                return false;
+            }
+            index = (index + 1) % slots;
+        }
+
+        slot[0] = 1;
+        System.arraycopy(id, 0, slot, 1, idBytes);
+        if(table != null) {
+            System.arraycopy(slot, 0, table, index * slotBytes, slotBytes);
+        } else {
+            slotBuffer.clear();
+            while(slotBuffer.hasRemaining()) {
+                channel.write(slotBuffer, (long) index * slotBytes + slotBuffer.position());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a slot of the current table into the slot buffer.
+     *
+     * @return true, if the slot is used
+     */
+    private boolean readSlot(int index) throws IOException {
+        if(table != null) {
+            System.arraycopy(table, index * slotBytes, slot, 0, slotBytes);
+        } else {
+            slotBuffer.clear();
+            read(channel, slotBuffer, (long) index * slotBytes);
+        }
+        return slot[0] != 0;
+    }
+
+    private boolean matches(byte[] id) {
+        for(int i = 0; i < idBytes; i++) {
+            if(slot[i + 1] != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void read(FileChannel fileChannel, ByteBuffer target, long position) throws IOException {
+        long start = position - target.position();
+        while(target.hasRemaining()) {
+            if(fileChannel.read(target, start + target.position()) < 0) {
+                throw new EOFException("Spilled id table ends before position " + (start + target.position()));
+            }
+        }
+    }
+
+    private static void releaseFile(FileChannel fileChannel, Path path) throws IOException {
+        if(fileChannel != null) {
+            fileChannel.close();
+        }
+        if(path != null) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static int firstSlot(byte[] key, int tableSlots) {
+        int hash = 1;
+        for(byte b : key) {
+            hash = 31 * hash + b;
+        }
+        // Finalizer of MurmurHash3, ids that only differ in their last bytes (e.g., the counter of ObjectIds) would
+        // otherwise end up in neighboring slots and form long probe sequences
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % tableSlots;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.junit.Test;
+
+public class HunkScopeTest {
+
+    @Test
+    public void testPrunesUntouchedMembers() {
+        HunkScope scope = scope(
+                lines("package p;",
+                        "",
+                        "import java.util.List;",
+                        "",
+                        "public class A {",
+                        "    private int a;",
+                        "",
+                        "    void b() {",
+                        "        a = 1;",
+                        "    }",
+                        "",
+                        "    void c() {",
+                        "    }",
+                        "}"),
+                lines("package p;",
+                        "",
+                        "import java.util.List;",
+                        "",
+                        "public class A {",
+                        "    private int a;",
+                        "",
+                        "    void b() {",
+                        "        a = 2;",
+                        "    }",
+                        "",
+                        "    void c() {",
+                        "    }",
+                        "}"));
+
+        assertNotNull(scope);
+        assertEquals(lines("package p;",
+                "",
+                "import java.util.List;",
+                "",
+                "public class A {",
+                "",
+                "    void b() {",
+                "        a = 1;",
+                "    }",
+                "}"), scope.getOldSource());
+        assertEquals(lines("package p;",
+                "",
+                "import java.util.List;",
+                "",
+                "public class A {",
+                "",
+                "    void b() {",
+                "        a = 2;",
+                "    }",
+                "}"), scope.getNewSource());
+        assertEquals(4, scope.getPrunedMembers());
+    }
+
+    @Test
+    public void testKeepsMemberWithSameHeaderOnOtherSide() {
+        // The edit only touches b in the old file, as the new one has the method at another position
+        HunkScope scope = scope(
+                lines("class A {",
+                        "    void b() {",
+                        "        int x = 1;",
+                        "    }",
+                        "",
+                        "    void c() {",
+                        "    }",
+                        "}"),
+                lines("class A {",
+                        "    void c() {",
+                        "    }",
+                        "",
+                        "    void b() {",
+                        "        int x = 1;",
+                        "    }",
+                        "}"));
+
+        assertNotNull(scope);
+        assertTrue(scope.getOldSource().contains("void b()"));
+        assertTrue(scope.getNewSource().contains("void b()"));
+    }
+
+    @Test
+    public void testBracesInLiteralsAndComments() {
+        HunkScope scope = scope(braces("1"), braces("2"));
+
+        assertNotNull(scope);
+        assertEquals(lines("class A {",
+                "",
+                "    void m() {",
+                "        int x = 2;",
+                "    }",
+                "}"), scope.getNewSource());
+        assertEquals(6, scope.getPrunedMembers());
+    }
+
+    @Test
+    public void testAnonymousClassAndDoubleBraceInitializer() {
+        HunkScope scope = scope(initializers("count++;"), initializers("count += 2;"));
+
+        // The anonymous class is part of the touched field, the other fields are removed completely
+        assertNotNull(scope);
+        assertEquals(lines("class A {",
+                "    private Runnable runnable = new Runnable() {",
+                "        @Override",
+                "        public void run() {",
+                "            count += 2;",
+                "        }",
+                "    };",
+                "}"), scope.getNewSource());
+        assertEquals(4, scope.getPrunedMembers());
+    }
+
+    @Test
+    public void testAnnotationArrayArguments() {
+        HunkScope scope = scope(annotations("1"), annotations("2"));
+
+        assertNotNull(scope);
+        assertEquals(lines("@SuppressWarnings({\"a\", \"b\"})",
+                "class A {",
+                "",
+                "    void n() {",
+                "        int x = 2;",
+                "    }",
+                "}"), scope.getNewSource());
+        assertEquals(2, scope.getPrunedMembers());
+    }
+
+    @Test
+    public void testNestedEnumConstantBodies() {
+        HunkScope scope = scope(nestedEnum("1"), nestedEnum("2"));
+
+        assertNotNull(scope);
+        assertFalse(scope.getNewSource().contains("enum"));
+        assertTrue(scope.getNewSource().contains("int x = 2;"));
+        assertEquals(2, scope.getPrunedMembers());
+    }
+
+    @Test
+    public void testTopLevelEnumConstantsAreKept() {
+        HunkScope scope = scope(topLevelEnum("1"), topLevelEnum("2"));
+
+        assertNotNull(scope);
+        assertEquals(lines("enum E {",
+                "    A {",
+                "        int f() {",
+                "            return 1;",
+                "        }",
+                "    },",
+                "    B;",
+                "",
+                "    int g() {",
+                "        return 2;",
+                "    }",
+                "}"), scope.getNewSource());
+        assertEquals(2, scope.getPrunedMembers());
+    }
+
+    @Test
+    public void testUnbalancedBraces() {
+        String valid = lines("class A {", "    void m() {", "    }", "}");
+        assertNull(scope(valid, lines("class A {", "    void m() {", "}")));
+        assertNull(scope(valid, lines("class A {", "    void m() {", "    }", "}", "}")));
+    }
+
+    @Test
+    public void testUnterminatedLiterals() {
+        String valid = lines("class A {", "    String s = \"a\";", "}");
+        assertNull(scope(valid, lines("class A {", "    String s = \"a;", "}")));
+        assertNull(scope(valid, lines("class A {", "    char c = 'a;", "}")));
+        assertNull(scope(valid, lines("class A {", "    String s = \"a\"; /* comment", "}")));
+    }
+
+    private static HunkScope scope(String oldSource, String newSource) {
+        EditList edits = DiffAlgorithm.getAlgorithm(DiffAlgorithm.SupportedAlgorithm.HISTOGRAM).diff(
+                RawTextComparator.DEFAULT, new RawText(oldSource.getBytes(StandardCharsets.UTF_8)),
+                new RawText(newSource.getBytes(StandardCharsets.UTF_8)));
+        return HunkScope.of(oldSource, newSource, edits);
+    }
+
+    private static String lines(String... lines) {
+        return String.join("\n", lines) + "\n";
+    }
+
+    private static String braces(String value) {
+        return lines("class A {",
+                "    private String open = \"{\";",
+                "    private char close = '}';",
+                "    // } in a line comment",
+                "    /* { in a block comment */",
+                "    private String escaped = \"\\\"}\";",
+                "",
+                "    void m() {",
+                "        int x = " + value + ";",
+                "    }",
+                "}");
+    }
+
+    private static String initializers(String statement) {
+        return lines("class A {",
+                "    private Runnable runnable = new Runnable() {",
+                "        @Override",
+                "        public void run() {",
+                "            " + statement,
+                "        }",
+                "    };",
+                "    private List<String> names = new ArrayList<String>() {{",
+                "        add(\"a\");",
+                "    }};",
+                "    private int count;",
+                "}");
+    }
+
+    private static String annotations(String value) {
+        return lines("@SuppressWarnings({\"a\", \"b\"})",
+                "class A {",
+                "    @SuppressWarnings({\"c\"})",
+                "    void m() {",
+                "    }",
+                "",
+                "    void n() {",
+                "        int x = " + value + ";",
+                "    }",
+                "}");
+    }
+
+    private static String nestedEnum(String value) {
+        return lines("class A {",
+                "    enum Mode {",
+                "        ON {",
+                "            @Override",
+                "            boolean enabled() {",
+                "                return true;",
+                "            }",
+                "        },",
+                "        OFF;",
+                "",
+                "        boolean enabled() {",
+                "            return false;",
+                "        }",
+                "    }",
+                "",
+                "    void m() {",
+                "        int x = " + value + ";",
+                "    }",
+                "}");
+    }
+
+    private static String topLevelEnum(String value) {
+        return lines("enum E {",
+                "    A {",
+                "        int f() {",
+                "            return 1;",
+                "        }",
+                "    },",
+                "    B;",
+                "",
+                "    int f() {",
+                "        return 0;",
+                "    }",
+                "",
+                "    int g() {",
+                "        return " + value + ";",
+                "    }",
+                "}");
+    }
+}
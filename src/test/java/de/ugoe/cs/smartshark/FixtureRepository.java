@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs.smartshark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Local git repository with a linear history of known java changes, which is used as fixture for the tests.
+ */
+public class FixtureRepository implements AutoCloseable {
+    public static final String JAVA_PATH = "src/fixture/Foo.java";
+    public static final String README_PATH = "README.md";
+
+    // 2018-01-01T00:00:00Z, each commit is one hour after the previous one
+    private static final long START_TIME = 1514764800000L;
+
+    private final Path directory;
+    private final Git git;
+    private final List<RevCommit> commits = new ArrayList<>();
+
+    public FixtureRepository(Path directory) throws IOException, GitAPIException {
+        this.directory = directory;
+        this.git = Git.init().setDirectory(directory.toFile()).call();
+
+        commit("Add Foo", JAVA_PATH, foo("a > 0", "count = 1;", "", "\"a\""));
+        // Condition change -> LOGIC/CONTROL
+        commit("Fix condition", JAVA_PATH, foo("a >= 0", "count = 1;", "", "\"a\""));
+        // Assignment change -> COMPUTATION
+        commit("Fix assignment", JAVA_PATH, foo("a >= 0", "count = 2;", "", "\"a\""));
+        // Additional field -> DATA
+        commit("Add field", JAVA_PATH, foo("a >= 0", "count = 2;", "    private int extra;\n", "\"a\""));
+        // Changed method invocation -> INTERFACE
+        commit("Fix output", JAVA_PATH, foo("a >= 0", "count = 2;", "    private int extra;\n", "\"b\""));
+        // No java change -> no classification
+        commit("Add readme", README_PATH, "# Fixture\n");
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public List<RevCommit> getCommits() {
+        return commits;
+    }
+
+    public String getRevisionHash(int index) {
+        return commits.get(index).getName();
+    }
+
+    public Date getCommitterDate(int index) {
+        return new Date(START_TIME + index * 3600000L);
+    }
+
+    @Override
+    public void close() {
+        git.close();
+    }
+
+    private void commit(String message, String path, String content) throws IOException, GitAPIException {
+        File file = directory.resolve(path).toFile();
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        git.add().addFilepattern(path).call();
+
+        PersonIdent ident = new PersonIdent("Fixture", "fixture@example.org", getCommitterDate(commits.size()),
+                TimeZone.getTimeZone("UTC"));
+        commits.add(git.commit().setMessage(message).setAuthor(ident).setCommitter(ident).call());
+    }
+
+    private static String foo(String condition, String assignment, String additionalField, String output) {
+        return "package fixture;\n" +
+                "\n" +
+                "public class Foo {\n" +
+                "    private int count;\n" +
+                additionalField +
+                "\n" +
+                "    public void run(int a) {\n" +
+                "        if (" + condition + ") {\n" +
+                "            " + assignment + "\n" +
+                "        }\n" +
+                "        System.out.println(" + output + ");\n" +
+                "    }\n" +
+                // Members that are never changed, hence removed by the hunk-scoped distillation
+                "\n" +
+                "    private static final String BRACES = \"{ not a block }\";\n" +
+                "\n" +
+                "    public void reset() {\n" +
+                "        count = 0;\n" +
+                "    }\n" +
+                "\n" +
+                "    public int getCount() {\n" +
+                "        return count;\n" +
+                "    }\n" +
+                "}\n";
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs.smartshark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import de.ugoe.cs.smartshark.model.CommitChanges;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.types.ObjectId;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.Morphia;
+
+/**
+ * Runs all strategies of the plugin on a {@link FixtureRepository} against an in-memory MongoDB and checks the
+ * stored {@link CommitChanges}. The throughput of each run is appended to build/throughput.csv (can be changed via
+ * the system property throughput.file).
+ */
+public class SmartSHARKPluginTest {
+    private static final String VCS_SYSTEM_URL = "http://example.org/fixture.git";
+
+    // Labels of the single changes of the fixture, as mapped by BugFixClassifier from the change types of
+    // ChangeDistiller: CONDITION_EXPRESSION_CHANGE of the if statement, STATEMENT_UPDATE of an ASSIGNMENT,
+    // ADDITIONAL_OBJECT_STATE of the new field and STATEMENT_UPDATE of a METHOD_INVOCATION
+    private static final Map<String, Integer> LOGIC_CONTROL = labels("LOGIC/CONTROL", 1);
+    private static final Map<String, Integer> COMPUTATION = labels("COMPUTATION", 1);
+    private static final Map<String, Integer> DATA = labels("DATA", 1);
+    private static final Map<String, Integer> INTERFACE = labels("INTERFACE", 1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FixtureRepository repository;
+    private MongoServer server;
+    private MongoClient client;
+    private Datastore datastore;
+
+    private final List<ObjectId> commitIds = new ArrayList<>();
+    private final ObjectId vcsSystemId = new ObjectId();
+    private final ObjectId fileId = new ObjectId();
+
+    @Before
+    public void setUp() throws IOException, GitAPIException {
+        repository = new FixtureRepository(folder.newFolder("repository").toPath());
+
+        server = new MongoServer(new MemoryBackend());
+        client = new MongoClient(new ServerAddress(server.bind()));
+        Morphia morphia = new Morphia();
+        morphia.mapPackage("de.ugoe.cs.smartshark.model");
+        datastore = morphia.createDatastore(client, "smartshark");
+
+        datastore.getDB().getCollection("vcs_system").insert(new BasicDBObject("_id", vcsSystemId)
+                .append("url", VCS_SYSTEM_URL));
+        datastore.getDB().getCollection("file").insert(new BasicDBObject("_id", fileId)
+                .append("vcs_system_id", vcsSystemId)
+                .append("path", FixtureRepository.JAVA_PATH));
+
+        // The fixes of the condition and the field are labeled as bugfixes
+        DBCollection commits = datastore.getDB().getCollection("commit");
+        for(int i = 0; i < repository.getCommits().size(); i++) {
+            ObjectId commitId = new ObjectId();
+            commitIds.add(commitId);
+            commits.insert(new BasicDBObject("_id", commitId)
+                    .append("vcs_system_id", vcsSystemId)
+                    .append("revision_hash", repository.getRevisionHash(i))
+                    .append("parents", i == 0 ? Collections.emptyList() :
+                            Collections.singletonList(repository.getRevisionHash(i - 1)))
+                    .append("committer_date", repository.getCommitterDate(i))
+                    .append("labels", new BasicDBObject("adjustedszz_bugfix", i == 1 || i == 3)));
+        }
+
+        // The first commit passed, the builds of the assignment and output fix failed (the latter one twice)
+        DBCollection travisBuilds = datastore.getDB().getCollection("travis_build");
+        travisBuilds.insert(travisBuild(0, "passed"));
+        travisBuilds.insert(travisBuild(2, "failed"));
+        travisBuilds.insert(travisBuild(4, "failed"));
+        travisBuilds.insert(travisBuild(4, "errored"));
+    }
+
+    @After
+    public void tearDown() {
+        repository.close();
+        client.close();
+        server.shutdownNow();
+    }
+
+    @Test
+    public void testAllCommits() throws IOException {
+        run("all");
+        assertAllCommitChanges();
+    }
+
+    @Test
+    public void testAllCommitsHunkScoped() throws IOException {
+        // The hunk-scoped distillation must yield the same results as the full-file distillation
+        HunkScopeStatistics statistics = run("all", "--hunkScoped");
+        assertAllCommitChanges();
+
+        // All changed java files were scoped and the untouched members were removed
+        assertEquals(4, statistics.getScopedFiles());
+        assertEquals(0, statistics.getFallbackFiles());
+        assertTrue("Pruned members: " + statistics.getPrunedMembers(), statistics.getPrunedMembers() > 0);
+    }
+
+    @Test
+    public void testAllCommitsHunkValidation() throws IOException {
+        HunkScopeStatistics statistics = run("all", "--hunkValidation");
+        assertAllCommitChanges();
+
+        assertEquals(0, statistics.getFallbackFiles());
+        assertEquals(4, statistics.getValidatedFiles());
+        assertEquals(0, statistics.getMismatchedFiles());
+        assertTrue(statistics.isWithinTolerance());
+    }
+
+    @Test
+    public void testBugfixCommits() throws IOException {
+        run("bugfix");
+
+        assertEquals(2, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(0, 1, LOGIC_CONTROL);
+        assertCommitChanges(2, 3, DATA);
+    }
+
+    @Test
+    public void testTravis() throws IOException {
+        run("travis");
+
+        assertEquals(2, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(0, 2, merge(LOGIC_CONTROL, COMPUTATION));
+        assertCommitChanges(0, 4, merge(LOGIC_CONTROL, COMPUTATION, DATA, INTERFACE));
+    }
+
+    @Test
+    public void testSingle() throws IOException {
+        run("single", "--sha1", repository.getRevisionHash(0), "--sha2", repository.getRevisionHash(2));
+
+        assertEquals(1, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(0, 2, merge(LOGIC_CONTROL, COMPUTATION));
+    }
+
+    @Test
+    public void testRevisionRange() throws IOException {
+        run("all", "--rev-range", repository.getRevisionHash(2) + ".." + repository.getRevisionHash(4));
+
+        assertEquals(2, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(2, 3, DATA);
+        assertCommitChanges(3, 4, INTERFACE);
+    }
+
+    @Test
+    public void testSince() throws IOException {
+        run("all", "--since", repository.getCommitterDate(4).toInstant().toString());
+
+        assertEquals(2, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(3, 4, INTERFACE);
+        assertCommitChanges(4, 5, null);
+    }
+
+    @Test
+    public void testRevisionRangeToHead() throws IOException {
+        run("all", "--rev-range", repository.getRevisionHash(3) + "..");
+
+        assertEquals(2, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(3, 4, INTERFACE);
+        assertCommitChanges(4, 5, null);
+    }
+
+    @Test
+    public void testSymmetricRevisionRange() throws IOException {
+        // In linear history, the symmetric difference equals the range from the older to the newer commit
+        run("all", "--rev-range", repository.getRevisionHash(4) + "..." + repository.getRevisionHash(2));
+
+        assertEquals(2, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(2, 3, DATA);
+        assertCommitChanges(3, 4, INTERFACE);
+    }
+
+    @Test
+    public void testTravisSince() throws IOException {
+        run("travis", "--since", repository.getCommitterDate(3).toInstant().toString());
+
+        assertEquals(1, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(0, 4, merge(LOGIC_CONTROL, COMPUTATION, DATA, INTERFACE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSince() throws IOException {
+        run("all", "--since", "yesterday");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidateInvalidUntil() {
+        CommitQueries.validateArguments(parseArguments("all", "--until", "2018-13-01"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidateInvalidRevisionRange() {
+        CommitQueries.validateArguments(parseArguments("all", "--rev-range", "a..b..c"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidateEmptyRevisionRange() {
+        CommitQueries.validateArguments(parseArguments("all", "--rev-range", ".."));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidateFiltersOfSingle() {
+        CommitQueries.validateArguments(parseArguments("single", "--sha1", repository.getRevisionHash(0),
+                "--sha2", repository.getRevisionHash(2), "--since", "2018-01-01"));
+    }
+
+    @Test
+    public void testValidateValidFilters() {
+        CommitQueries.validateArguments(parseArguments("travis", "--since", "2018-01-01",
+                "--until", "2018-01-31T12:00:00Z", "--rev-range", "HEAD~2..."));
+    }
+
+    private void assertAllCommitChanges() {
+        assertEquals(5, datastore.getCount(CommitChanges.class));
+        assertCommitChanges(0, 1, LOGIC_CONTROL);
+        assertCommitChanges(1, 2, COMPUTATION);
+        assertCommitChanges(2, 3, DATA);
+        assertCommitChanges(3, 4, INTERFACE);
+        // Only the readme was changed
+        assertCommitChanges(4, 5, null);
+    }
+
+    private void assertCommitChanges(int oldCommit, int newCommit, Map<String, Integer> expectedLabels) {
+        CommitChanges commitChanges = datastore.createQuery(CommitChanges.class)
+                .field("old_commit_id").equal(commitIds.get(oldCommit))
+                .field("new_commit_id").equal(commitIds.get(newCommit))
+                .get();
+        assertNotNull("No changes stored for commits " + oldCommit + " and " + newCommit, commitChanges);
+
+        Map<ObjectId, Map<String, Integer>> expected = null;
+        if(expectedLabels != null) {
+            expected = new HashMap<>();
+            expected.put(fileId, expectedLabels);
+        }
+        assertEquals("Changes of commits " + oldCommit + " and " + newCommit, expected,
+                commitChanges.getClassification());
+    }
+
+    private HunkScopeStatistics run(String strategy, String... additionalArguments) throws IOException {
+        CLIArguments cliArguments = parseArguments(strategy, additionalArguments);
+
+        long elapsed;
+        HunkScopeStatistics statistics;
+        try(SmartSHARKPlugin smartSHARKPlugin = new SmartSHARKPlugin(datastore, cliArguments)) {
+            long start = System.nanoTime();
+            switch(strategy) {
+                case "travis":
+                    smartSHARKPlugin.storeDataViaTravis();
+                    break;
+                case "all":
+                    smartSHARKPlugin.storeDataViaAllCommits();
+                    break;
+                case "bugfix":
+                    smartSHARKPlugin.storeDataViaBugfixCommits();
+                    break;
+                case "single":
+                    smartSHARKPlugin.storeSingleData(cliArguments.getSha1(), cliArguments.getSha2());
+                    break;
+            }
+            elapsed = System.nanoTime() - start;
+            statistics = smartSHARKPlugin.getHunkScopeStatistics();
+        }
+
+        List<String> run = new ArrayList<>(Arrays.asList("--strategy", strategy));
+        run.addAll(Arrays.asList(additionalArguments));
+        recordThroughput(String.join(" ", run),
+                datastore.getCount(CommitChanges.class), elapsed);
+        return statistics;
+    }
+
+    private CLIArguments parseArguments(String strategy, String... additionalArguments) {
+        List<String> arguments = new ArrayList<>(Arrays.asList(
+                "--input", repository.getDirectory().toString(),
+                "--vcsSystemURL", VCS_SYSTEM_URL,
+                "--strategy", strategy));
+        arguments.addAll(Arrays.asList(additionalArguments));
+        return CliFactory.parseArguments(CLIArguments.class, arguments.toArray(new String[arguments.size()]));
+    }
+
+    private static void recordThroughput(String run, long comparisons, long nanos) throws IOException {
+        Path file = Paths.get(System.getProperty("throughput.file", "build/throughput.csv"));
+        if(file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        if(!Files.exists(file)) {
+            Files.write(file, "run;comparisons;millis;comparisonsPerSecond\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        double millis = nanos / 1e6;
+        String line = String.format("%s;%d;%.1f;%.2f%n", run, comparisons, millis, comparisons / (millis / 1000));
+        Files.write(file, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private BasicDBObject travisBuild(int commit, String state) {
+        return new BasicDBObject("_id", new ObjectId())
+                .append("vcs_system_id", vcsSystemId)
+                .append("commit_id", commitIds.get(commit))
+                .append("state", state);
+    }
+
+    private static Map<String, Integer> labels(String label, int count) {
+        Map<String, Integer> labels = new HashMap<>();
+        labels.put(label, count);
+        return labels;
+    }
+
+    @SafeVarargs
+    private static Map<String, Integer> merge(Map<String, Integer>... labels) {
+        Map<String, Integer> merged = new HashMap<>();
+        for(Map<String, Integer> label : labels) {
+            merged.putAll(label);
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 University of Goettingen, Germany
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.ugoe.cs.smartshark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class SpillingIdSetTest {
+
+    @Test
+    public void testInMemory() throws IOException {
+        try(SpillingIdSet set = new SpillingIdSet(10)) {
+            List<ObjectId> ids = createIds(10);
+            for(ObjectId id : ids) {
+                assertTrue(set.add(id));
+            }
+            for(ObjectId id : ids) {
+                assertFalse(set.add(id));
+                assertTrue(set.contains(id.toByteArray()));
+            }
+
+            assertEquals(10, set.size());
+            assertNull(set.getFile());
+        }
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        try(SpillingIdSet set = new SpillingIdSet(4)) {
+            List<ObjectId> ids = createIds(5);
+            for(ObjectId id : ids) {
+                assertTrue(set.add(id));
+            }
+
+            assertNotNull(set.getFile());
+            assertTrue(Files.exists(set.getFile()));
+            assertEquals(5, set.size());
+            for(ObjectId id : ids) {
+                assertTrue(set.contains(id.toByteArray()));
+            }
+            assertFalse(set.contains(new ObjectId().toByteArray()));
+        }
+    }
+
+    @Test
+    public void testDuplicatesAfterSpill() throws IOException {
+        try(SpillingIdSet set = new SpillingIdSet(4)) {
+            List<ObjectId> ids = createIds(20);
+            for(ObjectId id : ids) {
+                assertTrue(set.add(id));
+            }
+            for(ObjectId id : ids) {
+                assertFalse(set.add(id));
+            }
+
+            assertEquals(20, set.size());
+        }
+    }
+
+    @Test
+    public void testGrowWithRehash() throws IOException {
+        try(SpillingIdSet set = new SpillingIdSet(4)) {
+            List<ObjectId> ids = createIds(5000);
+            for(ObjectId id : ids.subList(0, 5)) {
+                set.add(id);
+            }
+            Path spillFile = set.getFile();
+
+            // The spilled table has 16 slots, so that it needs to grow several times. It alternates between two
+            // files and the previous table is truncated right away.
+            Set<Path> files = new HashSet<>();
+            for(ObjectId id : ids.subList(5, ids.size())) {
+                assertTrue(set.add(id));
+                files.add(set.getFile());
+                if(!set.getFile().equals(spillFile)) {
+                    assertEquals(0, Files.size(spillFile));
+                }
+            }
+
+            assertEquals(2, files.size());
+            assertEquals(5000, set.size());
+            for(ObjectId id : ids) {
+                assertTrue(set.contains(id.toByteArray()));
+                assertFalse(set.add(id));
+            }
+        }
+    }
+
+    @Test
+    public void testCloseDeletesFile() throws IOException {
+        SpillingIdSet set = new SpillingIdSet(4);
+        for(ObjectId id : createIds(5)) {
+            set.add(id);
+        }
+        Path spillFile = set.getFile();
+        assertTrue(Files.exists(spillFile));
+
+        set.close();
+
+        assertFalse(Files.exists(spillFile));
+        assertNull(set.getFile());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterClose() throws IOException {
+        SpillingIdSet set = new SpillingIdSet(4);
+        set.close();
+        set.add(new ObjectId());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testContainsAfterClose() throws IOException {
+        SpillingIdSet set = new SpillingIdSet(4);
+        for(ObjectId id : createIds(5)) {
+            set.add(id);
+        }
+        set.close();
+        set.contains(new ObjectId().toByteArray());
+    }
+
+    @Test
+    public void testOtherIdLength() throws IOException {
+        try(SpillingIdSet set = new SpillingIdSet(20, 2)) {
+            for(int i = 0; i < 100; i++) {
+                assertTrue(set.add(createRawId(20, i)));
+            }
+
+            assertNotNull(set.getFile());
+            for(int i = 0; i < 100; i++) {
+                assertTrue(set.contains(createRawId(20, i)));
+            }
+            assertFalse(set.contains(createRawId(20, 100)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongIdLength() throws IOException {
+        try(SpillingIdSet set = new SpillingIdSet(4)) {
+            set.add(createRawId(20, 0));
+        }
+    }
+
+    private static List<ObjectId> createIds(int count) {
+        List<ObjectId> ids = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            ids.add(new ObjectId());
+        }
+        return ids;
+    }
+
+    private static byte[] createRawId(int length, int value) {
+        byte[] id = new byte[length];
+        id[0] = (byte) value;
+        id[length - 1] = (byte) (value >> 8);
+        return id;
+    }
+}